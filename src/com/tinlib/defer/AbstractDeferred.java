@@ -0,0 +1,152 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The parts of a Deferred which only depend on its handler registration and
+ * settlement methods. Results of then() are always plain DeferredImpls.
+ */
+abstract class AbstractDeferred<V> implements Deferred<V> {
+  /**
+   * Resolves this deferred with a value from a promise it was chained from.
+   * The value may be null.
+   */
+  abstract void resolveChained(V value);
+
+  /**
+   * Moves this deferred to the RESOLVED state without invoking any handlers.
+   * The handlers registered so far are run by the returned Runnable, which the
+   * caller may invoke at a later point, e.g. as part of a batched drain. The
+   * value may be null.
+   */
+  abstract Runnable publishResolve(V value);
+
+  /**
+   * Moves this deferred to the FAILED state without invoking any handlers. The
+   * handlers registered so far are run by the returned Runnable.
+   */
+  abstract Runnable publishFail(RuntimeException exception);
+
+  /**
+   * Adds a success handler and a failure handler as a single registration,
+   * so that context is captured once for the pair.
+   */
+  abstract void addHandlers(SuccessHandler<V> successHandler, FailureHandler failureHandler);
+
+  /**
+   * Adds both handlers to the promise, as a single registration if the
+   * promise supports it.
+   */
+  static <T> void register(Promise<T> promise, SuccessHandler<T> successHandler,
+      FailureHandler failureHandler) {
+    if (promise instanceof AbstractDeferred) {
+      ((AbstractDeferred<T>)promise).addHandlers(successHandler, failureHandler);
+    } else {
+      promise.addSuccessHandler(successHandler);
+      promise.addFailureHandler(failureHandler);
+    }
+  }
+
+  @Override
+  public void addSuccessHandler(final Runnable successHandler) {
+    addSuccessHandler(new SuccessHandler<V>() {
+      @Override
+      public void onSuccess(V value) {
+        successHandler.run();
+      }
+    });
+  }
+
+  @Override
+  public void addFailureHandler(final Runnable runnable) {
+    addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        runnable.run();
+      }
+    });
+  }
+
+  @Override
+  public <K> Promise<K> then(final Function<V, Promise<K>> function) {
+    final Deferred<K> result = new DeferredImpl<>(this, "then");
+    addHandlers(new SuccessHandler<V>() {
+      @Override
+      public void onSuccess(V value) {
+        Preconditions.checkNotNull(value);
+        boolean entered = PromiseTracer.enterTrace(result);
+        try {
+          result.chainFrom(function.apply(value));
+        } finally {
+          PromiseTracer.exitTrace(entered);
+        }
+      }
+    }, new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        result.fail(exception);
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public <K> Promise<K> then(final Callable<Promise<K>> function) {
+    final Deferred<K> result = new DeferredImpl<>(this, "then");
+    addHandlers(new SuccessHandler<V>() {
+      @Override
+      public void onSuccess(V value) {
+        boolean entered = PromiseTracer.enterTrace(result);
+        try {
+          result.chainFrom(function.call());
+        } catch (Exception exception) {
+          throw new RuntimeException(exception);
+        } finally {
+          PromiseTracer.exitTrace(entered);
+        }
+      }
+    }, new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        result.fail(exception);
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public Promise<Void> then(final Runnable runnable) {
+    final Deferred<Void> result = new DeferredImpl<>(this, "then");
+    addHandlers(new SuccessHandler<V>() {
+      @Override
+      public void onSuccess(V value) {
+        runnable.run();
+        result.resolve();
+      }
+    }, new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        result.fail(exception);
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public void chainFrom(Promise<V> promise) {
+    register(promise, new SuccessHandler<V>() {
+      @Override
+      public void onSuccess(V value) {
+        resolveChained(value);
+      }
+    }, new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        fail(exception);
+      }
+    });
+  }
+}
@@ -0,0 +1,187 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A token-bucket rate limiter which never blocks. acquire() returns a Promise
+ * which resolves once a token is available. Waiters that cannot be served
+ * immediately are resolved from a task on the supplied scheduler.
+ */
+public final class AsyncRateLimiter {
+  private final double nanosPerToken;
+  private final double burst;
+  private final boolean fair;
+  private final int maxQueued;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicInteger queued = new AtomicInteger(0);
+  private final Queue<Deferred<Void>> waiters = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  /** The number of drain() calls not yet observed by the draining thread. */
+  private final AtomicInteger drainRequests = new AtomicInteger(0);
+  private final Runnable scheduledDrain = new Runnable() {
+    @Override
+    public void run() {
+      drainScheduled.set(false);
+      drain();
+    }
+  };
+  private double tokens;
+  private long lastRefillNanos = System.nanoTime();
+
+  /**
+   * Creates a fair rate limiter with an unbounded wait queue.
+   */
+  public AsyncRateLimiter(double permitsPerSecond, int burst,
+      ScheduledExecutorService scheduler) {
+    this(permitsPerSecond, burst, true, Integer.MAX_VALUE, scheduler);
+  }
+
+  /**
+   * @param permitsPerSecond The rate at which tokens are added to the bucket.
+   * @param burst The capacity of the bucket, which starts out full.
+   * @param fair If true, new acquirers queue behind existing waiters instead
+   *     of taking a free token directly.
+   * @param maxQueued The maximum number of waiters. Once reached, acquire()
+   *     returns a failed promise immediately.
+   * @param scheduler Used to resolve waiters once tokens become available.
+   */
+  public AsyncRateLimiter(double permitsPerSecond, int burst, boolean fair, int maxQueued,
+      ScheduledExecutorService scheduler) {
+    Preconditions.checkArgument(permitsPerSecond > 0.0, "permitsPerSecond must be positive");
+    Preconditions.checkArgument(burst >= 1, "burst must be at least 1");
+    Preconditions.checkArgument(maxQueued >= 0, "maxQueued must be non-negative");
+    this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    this.burst = burst;
+    this.tokens = burst;
+    this.fair = fair;
+    this.maxQueued = maxQueued;
+    this.scheduler = Preconditions.checkNotNull(scheduler);
+  }
+
+  /**
+   * Returns a promise which resolves once a token has been taken. The promise
+   * fails with a RejectedExecutionException if no token is available and the
+   * wait queue is full.
+   */
+  public Promise<Void> acquire() {
+    if ((!fair || waiters.isEmpty()) && tryTake()) {
+      Deferred<Void> result = Deferreds.newDeferred();
+      result.resolve();
+      return result;
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      return Deferreds.newFailedDeferred(
+          new RejectedExecutionException("AsyncRateLimiter wait queue is full"));
+    }
+    Deferred<Void> waiter = Deferreds.newDeferred();
+    waiters.add(waiter);
+    drain();
+    return waiter;
+  }
+
+  public int getQueueLength() {
+    return queued.get();
+  }
+
+  private synchronized void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefillNanos) / nanosPerToken);
+    lastRefillNanos = now;
+  }
+
+  private synchronized boolean tryTake() {
+    refill();
+    if (tokens >= 1.0) {
+      tokens -= 1.0;
+      return true;
+    }
+    return false;
+  }
+
+  private synchronized void giveBack() {
+    tokens = Math.min(burst, tokens + 1.0);
+  }
+
+  private synchronized long nanosUntilNextToken() {
+    refill();
+    return Math.max(0L, (long)Math.ceil((1.0 - tokens) * nanosPerToken));
+  }
+
+  /**
+   * Hands available tokens to waiters. As in AsyncSemaphore, only the
+   * outermost caller loops, so handlers which acquire again do not recurse,
+   * and an exception thrown by a waiter's handlers is passed to the thread's
+   * uncaught exception handler instead of the caller.
+   */
+  private void drain() {
+    if (drainRequests.getAndIncrement() != 0) {
+      return;
+    }
+    RuntimeException error = null;
+    int requests = 1;
+    do {
+      while (!waiters.isEmpty()) {
+        if (!tryTake()) {
+          error = scheduleDrain(error);
+          break;
+        }
+        Deferred<Void> waiter = waiters.poll();
+        if (waiter == null) {
+          giveBack();
+          break;
+        }
+        queued.decrementAndGet();
+        try {
+          waiter.resolve();
+        } catch (RuntimeException exception) {
+          if (error == null) {
+            error = exception;
+          }
+        }
+      }
+      requests = drainRequests.addAndGet(-requests);
+    } while (requests != 0);
+    if (error != null) {
+      Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, error);
+    }
+  }
+
+  /**
+   * Schedules a drain for when the next token is due. If the scheduler
+   * rejects it, e.g. because it has been shut down, no token will ever be
+   * handed out, so every queued waiter fails with the rejection instead.
+   * Returns the first handler error seen so far.
+   */
+  private RuntimeException scheduleDrain(RuntimeException error) {
+    if (!drainScheduled.compareAndSet(false, true)) {
+      return error;
+    }
+    try {
+      scheduler.schedule(scheduledDrain, nanosUntilNextToken(), TimeUnit.NANOSECONDS);
+    } catch (RuntimeException rejection) {
+      drainScheduled.set(false);
+      Deferred<Void> waiter;
+      while ((waiter = waiters.poll()) != null) {
+        queued.decrementAndGet();
+        try {
+          waiter.fail(rejection);
+        } catch (RuntimeException exception) {
+          if (error == null) {
+            error = exception;
+          }
+        }
+      }
+    }
+    return error;
+  }
+}
@@ -0,0 +1,179 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A counting semaphore which never blocks. Instead of waiting for a permit,
+ * acquire() returns a Promise which resolves once one is available. Waiters
+ * are resolved on the thread that releases the permit they receive.
+ */
+public final class AsyncSemaphore {
+  /**
+   * A permit obtained from an AsyncSemaphore. Releasing a permit more than
+   * once has no effect.
+   */
+  public final class Permit {
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private Permit() {}
+
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        available.incrementAndGet();
+        drain();
+      }
+    }
+  }
+
+  private final AtomicInteger available;
+  private final boolean fair;
+  private final int maxQueued;
+  private final AtomicInteger queued = new AtomicInteger(0);
+  /** The number of drain() calls not yet observed by the draining thread. */
+  private final AtomicInteger drainRequests = new AtomicInteger(0);
+  private final Queue<Deferred<Permit>> waiters = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Creates a fair semaphore with an unbounded wait queue.
+   */
+  public AsyncSemaphore(int permits) {
+    this(permits, true, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param permits The number of permits initially available.
+   * @param fair If true, new acquirers queue behind existing waiters instead
+   *     of taking a free permit directly.
+   * @param maxQueued The maximum number of waiters. Once reached, acquire()
+   *     returns a failed promise immediately.
+   */
+  public AsyncSemaphore(int permits, boolean fair, int maxQueued) {
+    Preconditions.checkArgument(permits >= 0, "permits must be non-negative");
+    Preconditions.checkArgument(maxQueued >= 0, "maxQueued must be non-negative");
+    this.available = new AtomicInteger(permits);
+    this.fair = fair;
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Returns a promise for a permit. The promise fails with a
+   * RejectedExecutionException if no permit is free and the wait queue is
+   * full.
+   */
+  public Promise<Permit> acquire() {
+    if ((!fair || waiters.isEmpty()) && tryTake()) {
+      return Deferreds.newResolvedDeferred(new Permit());
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      return Deferreds.newFailedDeferred(
+          new RejectedExecutionException("AsyncSemaphore wait queue is full"));
+    }
+    Deferred<Permit> waiter = Deferreds.newDeferred();
+    waiters.add(waiter);
+    drain();
+    return waiter;
+  }
+
+  /**
+   * Acquires a permit, runs the task, and releases the permit once the
+   * promise returned by the task completes. If the task throws or returns
+   * null, the permit is released immediately and the returned promise fails.
+   */
+  public <V> Promise<V> withPermit(final Callable<Promise<V>> task) {
+    return acquire().then(new Function<Permit, Promise<V>>() {
+      @Override
+      public Promise<V> apply(final Permit permit) {
+        Promise<V> result;
+        try {
+          result = task.call();
+        } catch (RuntimeException exception) {
+          permit.release();
+          return Deferreds.newFailedDeferred(exception);
+        } catch (Exception exception) {
+          permit.release();
+          return Deferreds.newFailedDeferred(new RuntimeException(exception));
+        }
+        if (result == null) {
+          permit.release();
+          return Deferreds.newFailedDeferred(
+              new NullPointerException("Task returned a null promise"));
+        }
+        result.addCompletionHandler(new Runnable() {
+          @Override
+          public void run() {
+            permit.release();
+          }
+        });
+        return result;
+      }
+    });
+  }
+
+  public int getAvailablePermits() {
+    return Math.max(0, available.get());
+  }
+
+  public int getQueueLength() {
+    return queued.get();
+  }
+
+  private boolean tryTake() {
+    while (true) {
+      int current = available.get();
+      if (current <= 0) {
+        return false;
+      }
+      if (available.compareAndSet(current, current - 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Hands free permits to waiters. Called after every enqueue and every
+   * release, so that whichever of the two happens last sees the other. Only
+   * the outermost caller loops; a waiter whose handlers release a permit
+   * re-entrantly just records another pass instead of recursing. An
+   * exception thrown by a waiter's handlers has nothing to do with whoever
+   * happens to be draining, so it is passed to the thread's uncaught
+   * exception handler once draining is complete.
+   */
+  private void drain() {
+    if (drainRequests.getAndIncrement() != 0) {
+      return;
+    }
+    RuntimeException error = null;
+    int requests = 1;
+    do {
+      while (!waiters.isEmpty() && tryTake()) {
+        Deferred<Permit> waiter = waiters.poll();
+        if (waiter == null) {
+          available.incrementAndGet();
+          continue;
+        }
+        queued.decrementAndGet();
+        try {
+          waiter.resolve(new Permit());
+        } catch (RuntimeException exception) {
+          if (error == null) {
+            error = exception;
+          }
+        }
+      }
+      requests = drainRequests.addAndGet(-requests);
+    } while (requests != 0);
+    if (error != null) {
+      Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, error);
+    }
+  }
+}
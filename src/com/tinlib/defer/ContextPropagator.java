@@ -0,0 +1,23 @@
+package com.tinlib.defer;
+
+/**
+ * Carries a piece of thread-local context, such as an MDC map, a tracing
+ * span or a deadline, from the thread which registers a handler on a pending
+ * promise to the thread which later runs it. Register implementations via
+ * {@link ContextPropagators#register(ContextPropagator)}.
+ */
+public interface ContextPropagator {
+  /**
+   * Returns this propagator's context on the current thread. Called once per
+   * handler registration, so the result should be an immutable value which
+   * can be shared rather than a defensive copy.
+   */
+  public Object capture();
+
+  /**
+   * Installs a value previously returned by capture() on the current thread
+   * and returns the value it replaced, which is later passed back to
+   * restore() once the handler has run.
+   */
+  public Object restore(Object context);
+}
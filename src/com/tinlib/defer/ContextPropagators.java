@@ -0,0 +1,181 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * The registry of {@link ContextPropagator}s. While at least one propagator
+ * is registered, every handler added to a pending deferred captures a
+ * snapshot of the current context, which is restored around the handler when
+ * it runs. While none are registered, handlers are stored and run unchanged.
+ */
+public class ContextPropagators {
+  private static final ContextPropagator[] NONE = new ContextPropagator[0];
+
+  /** Replaced wholesale on every change, never mutated. */
+  private static volatile ContextPropagator[] propagators = NONE;
+
+  private ContextPropagators() {}
+
+  public static synchronized void register(ContextPropagator propagator) {
+    Preconditions.checkNotNull(propagator);
+    ContextPropagator[] current = propagators;
+    ContextPropagator[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = propagator;
+    propagators = updated;
+  }
+
+  public static synchronized void unregister(ContextPropagator propagator) {
+    ContextPropagator[] current = propagators;
+    for (int i = 0; i < current.length; ++i) {
+      if (current[i] == propagator) {
+        ContextPropagator[] updated = new ContextPropagator[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+        propagators = updated;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Captures the current context of every registered propagator, or returns
+   * null if there are none. A snapshot may be shared by handlers of which at
+   * most one ever runs, such as the success and failure handlers added by a
+   * single then() call.
+   */
+  static Snapshot capture() {
+    ContextPropagator[] current = propagators;
+    return current.length == 0 ? null : new Snapshot(current);
+  }
+
+  static <V> SuccessHandler<V> wrapSuccess(Snapshot snapshot, SuccessHandler<V> handler) {
+    return snapshot == null ? handler : new ContextualSuccessHandler<>(snapshot, handler);
+  }
+
+  static FailureHandler wrapFailure(Snapshot snapshot, FailureHandler handler) {
+    return snapshot == null ? handler : new ContextualFailureHandler(snapshot, handler);
+  }
+
+  static Runnable wrapCompletion(Snapshot snapshot, Runnable handler) {
+    return snapshot == null ? handler : new ContextualRunnable(snapshot, handler);
+  }
+
+  /**
+   * The context captured by a fixed set of propagators. attach() and
+   * detach() swap the captured and current contexts in place, so running a
+   * handler allocates nothing and leaves the snapshot as it was captured.
+   * If a propagator throws from attach(), the propagators already swapped
+   * are swapped back before the exception is rethrown, so the thread's
+   * context is left as it was.
+   */
+  static final class Snapshot {
+    private final ContextPropagator[] propagators;
+    private final Object[] contexts;
+
+    private Snapshot(ContextPropagator[] propagators) {
+      this.propagators = propagators;
+      this.contexts = new Object[propagators.length];
+      for (int i = 0; i < propagators.length; ++i) {
+        contexts[i] = propagators[i].capture();
+      }
+    }
+
+    private void attach() {
+      for (int i = 0; i < propagators.length; ++i) {
+        try {
+          contexts[i] = propagators[i].restore(contexts[i]);
+        } catch (RuntimeException exception) {
+          throw swapBack(i - 1, exception);
+        }
+      }
+    }
+
+    private void detach() {
+      RuntimeException error = swapBack(propagators.length - 1, null);
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    /**
+     * Swaps propagators from..0 back, even if some of them throw. Returns the
+     * first exception, including the given one, with later ones suppressed.
+     */
+    private RuntimeException swapBack(int from, RuntimeException error) {
+      for (int i = from; i >= 0; --i) {
+        try {
+          contexts[i] = propagators[i].restore(contexts[i]);
+        } catch (RuntimeException exception) {
+          if (error == null) {
+            error = exception;
+          } else if (error != exception) {
+            error.addSuppressed(exception);
+          }
+        }
+      }
+      return error;
+    }
+  }
+
+  private static final class ContextualSuccessHandler<V> implements SuccessHandler<V> {
+    private final Snapshot snapshot;
+    private final SuccessHandler<V> handler;
+
+    ContextualSuccessHandler(Snapshot snapshot, SuccessHandler<V> handler) {
+      this.snapshot = snapshot;
+      this.handler = handler;
+    }
+
+    @Override
+    public void onSuccess(V value) {
+      snapshot.attach();
+      try {
+        handler.onSuccess(value);
+      } finally {
+        snapshot.detach();
+      }
+    }
+  }
+
+  private static final class ContextualFailureHandler implements FailureHandler {
+    private final Snapshot snapshot;
+    private final FailureHandler handler;
+
+    ContextualFailureHandler(Snapshot snapshot, FailureHandler handler) {
+      this.snapshot = snapshot;
+      this.handler = handler;
+    }
+
+    @Override
+    public void onError(RuntimeException exception) {
+      snapshot.attach();
+      try {
+        handler.onError(exception);
+      } finally {
+        snapshot.detach();
+      }
+    }
+  }
+
+  private static final class ContextualRunnable implements Runnable {
+    private final Snapshot snapshot;
+    private final Runnable handler;
+
+    ContextualRunnable(Snapshot snapshot, Runnable handler) {
+      this.snapshot = snapshot;
+      this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+      snapshot.attach();
+      try {
+        handler.run();
+      } finally {
+        snapshot.detach();
+      }
+    }
+  }
+}
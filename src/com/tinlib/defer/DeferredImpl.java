@@ -1,20 +1,36 @@
 package com.tinlib.defer;
 
-import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import java.util.List;
-import java.util.concurrent.Callable;
 
-class DeferredImpl<V> implements Deferred<V> {
+class DeferredImpl<V> extends AbstractDeferred<V> {
   private Promise.State state = State.PENDING;
   private Optional<V> value;
   private RuntimeException exception;
   private final List<SuccessHandler<V>> successHandlers = Lists.newArrayList();
   private final List<FailureHandler> failureHandlers = Lists.newArrayList();
   private final List<Runnable> completionHandlers = Lists.newArrayList();
+  private volatile TraceNode traceNode;
+
+  DeferredImpl() {
+    // Only store when traced, so untraced deferreds skip the volatile write.
+    TraceNode node = PromiseTracer.newRootNode();
+    if (node != null) {
+      this.traceNode = node;
+    }
+  }
+
+  /**
+   * Creates a deferred derived from the given parent promise. It is traced
+   * only if the parent is. The parent may be null if the edges are recorded
+   * later via PromiseTracer.link().
+   */
+  DeferredImpl(Promise<?> parent, String kind) {
+    PromiseTracer.link(parent, this, kind);
+  }
 
   @Override
   public synchronized void resolve() {
@@ -25,38 +41,97 @@ class DeferredImpl<V> implements Deferred<V> {
     resolveOptional(Optional.of(value));
   }
 
-  private void resolveOptional(Optional<V> value) {
+  private synchronized void resolveOptional(Optional<V> value) {
+    markResolved(value);
+    dispatchSuccess(value);
+  }
+
+  @Override
+  public synchronized void fail(RuntimeException exception) {
+    markFailed(exception);
+    dispatchFailure(exception);
+  }
+
+  @Override
+  synchronized Runnable publishResolve(V resolvedValue) {
+    final Optional<V> value = Optional.fromNullable(resolvedValue);
+    markResolved(value);
+    return new Runnable() {
+      @Override
+      public void run() {
+        dispatchSuccess(value);
+      }
+    };
+  }
+
+  @Override
+  synchronized Runnable publishFail(final RuntimeException exception) {
+    markFailed(exception);
+    return new Runnable() {
+      @Override
+      public void run() {
+        dispatchFailure(exception);
+      }
+    };
+  }
+
+  private void markResolved(Optional<V> value) {
     Preconditions.checkArgument(this.state == State.PENDING);
 
     this.value = value;
+    this.state = State.RESOLVED;
+    if (traceNode != null) {
+      traceNode.settle(state);
+    }
+  }
+
+  private void markFailed(RuntimeException exception) {
+    Preconditions.checkArgument(this.state == State.PENDING);
+
+    this.exception = exception;
+    this.state = State.FAILED;
+    if (traceNode != null) {
+      traceNode.settle(state);
+    }
+  }
+
+  /**
+   * Handler lists are never modified once the state has left PENDING, so
+   * these may run without holding the monitor.
+   */
+  private void dispatchSuccess(Optional<V> value) {
     for (SuccessHandler<V> successHandler : successHandlers) {
       successHandler.onSuccess(value.orNull());
     }
     for (Runnable completionHandler : completionHandlers) {
       completionHandler.run();
     }
-    this.state = State.RESOLVED;
   }
 
-  @Override
-  public synchronized void fail(RuntimeException exception) {
-    Preconditions.checkArgument(this.state == State.PENDING);
-
-    this.exception = exception;
+  private void dispatchFailure(RuntimeException exception) {
     for (FailureHandler failureHandler : failureHandlers) {
       failureHandler.onError(exception);
     }
     for (Runnable completionHandler : completionHandlers) {
       completionHandler.run();
     }
-    this.state = State.FAILED;
   }
 
+  /**
+   * The add methods capture context before taking the monitor, since
+   * propagators run arbitrary code. The capture is wasted if the deferred
+   * turns out to have settled already.
+   */
   @Override
-  public synchronized void addSuccessHandler(SuccessHandler<V> handler) {
+  public void addSuccessHandler(SuccessHandler<V> handler) {
+    addSuccessHandler(ContextPropagators.capture(), handler);
+  }
+
+  private synchronized void addSuccessHandler(ContextPropagators.Snapshot snapshot,
+      SuccessHandler<V> handler) {
     switch (state) {
       case PENDING:
-        successHandlers.add(handler);
+        successHandlers.add(ContextPropagators.wrapSuccess(snapshot, handler));
         break;
       case RESOLVED:
         handler.onSuccess(value.orNull());
@@ -68,20 +143,15 @@ class DeferredImpl<V> implements Deferred<V> {
   }
 
   @Override
-  public void addSuccessHandler(final Runnable successHandler) {
-    addSuccessHandler(new SuccessHandler<V>() {
-      @Override
-      public void onSuccess(V value) {
-        successHandler.run();
-      }
-    });
+  public void addFailureHandler(FailureHandler failureHandler) {
+    addFailureHandler(ContextPropagators.capture(), failureHandler);
   }
 
-  @Override
-  public synchronized void addFailureHandler(FailureHandler failureHandler) {
+  private synchronized void addFailureHandler(ContextPropagators.Snapshot snapshot,
+      FailureHandler failureHandler) {
     switch (state) {
       case PENDING:
-        failureHandlers.add(failureHandler);
+        failureHandlers.add(ContextPropagators.wrapFailure(snapshot, failureHandler));
         break;
       case RESOLVED:
         // Do nothing
@@ -93,19 +163,35 @@ class DeferredImpl<V> implements Deferred<V> {
   }
 
   @Override
-  public void addFailureHandler(final Runnable runnable) {
-    addFailureHandler(new FailureHandler() {
-      @Override
-      public void onError(RuntimeException exception) {
-        runnable.run();
-      }
-    });
+  void addHandlers(SuccessHandler<V> successHandler, FailureHandler failureHandler) {
+    addHandlers(ContextPropagators.capture(), successHandler, failureHandler);
+  }
+
+  private synchronized void addHandlers(ContextPropagators.Snapshot snapshot,
+      SuccessHandler<V> successHandler, FailureHandler failureHandler) {
+    switch (state) {
+      case PENDING:
+        successHandlers.add(ContextPropagators.wrapSuccess(snapshot, successHandler));
+        failureHandlers.add(ContextPropagators.wrapFailure(snapshot, failureHandler));
+        break;
+      case RESOLVED:
+        successHandler.onSuccess(value.orNull());
+        break;
+      case FAILED:
+        failureHandler.onError(exception);
+        break;
+    }
   }
 
   @Override
-  public synchronized void addCompletionHandler(Runnable onComplete) {
+  public void addCompletionHandler(Runnable onComplete) {
+    addCompletionHandler(ContextPropagators.capture(), onComplete);
+  }
+
+  private synchronized void addCompletionHandler(ContextPropagators.Snapshot snapshot,
+      Runnable onComplete) {
     if (state == State.PENDING) {
-      completionHandlers.add(onComplete);
+      completionHandlers.add(ContextPropagators.wrapCompletion(snapshot, onComplete));
     } else {
       onComplete.run();
     }
@@ -116,80 +202,25 @@ class DeferredImpl<V> implements Deferred<V> {
     return state;
   }
 
-  @Override
-  public <K> Promise<K> then(final Function<V, Promise<K>> function) {
-    final DeferredImpl<K> result = new DeferredImpl<>();
-    addSuccessHandler(new SuccessHandler<V>() {
-      @Override
-      public void onSuccess(V value) {
-        Preconditions.checkNotNull(value);
-        result.chainFrom(function.apply(value));
-      }
-    });
-    addFailureHandler(new FailureHandler() {
-      @Override
-      public void onError(RuntimeException exception) {
-        result.fail(exception);
-      }
-    });
-    return result;
+  TraceNode getTraceNode() {
+    return traceNode;
   }
 
-  @Override
-  public <K> Promise<K> then(final Callable<Promise<K>> function) {
-    final DeferredImpl<K> result = new DeferredImpl<>();
-    addSuccessHandler(new SuccessHandler<V>() {
-      @Override
-      public void onSuccess(V value) {
-        try {
-          result.chainFrom(function.call());
-        } catch (Exception exception) {
-          throw new RuntimeException(exception);
-        }
-      }
-    });
-    addFailureHandler(new FailureHandler() {
-      @Override
-      public void onError(RuntimeException exception) {
-        result.fail(exception);
-      }
-    });
-    return result;
+  synchronized TraceNode getOrCreateTraceNode(String kind) {
+    if (traceNode == null) {
+      traceNode = new TraceNode(kind);
+    }
+    return traceNode;
   }
 
   @Override
-  public Promise<Void> then(final Runnable runnable) {
-    final DeferredImpl<Void> result = new DeferredImpl<>();
-    addSuccessHandler(new Runnable() {
-      @Override
-      public void run() {
-        runnable.run();
-        result.resolve();
-      }
-    });
-    addFailureHandler(new FailureHandler() {
-      @Override
-      public void onError(RuntimeException exception) {
-        result.fail(exception);
-      }
-    });
-    return result;
+  public void chainFrom(Promise<V> promise) {
+    PromiseTracer.link(promise, this, "chainFrom");
+    super.chainFrom(promise);
   }
 
   @Override
-  public void chainFrom(Promise<V> promise) {
-    promise.addSuccessHandler(new SuccessHandler<V>() {
-      @Override
-      public void onSuccess(V value) {
-        resolveOptional(Optional.fromNullable(value));
-      }
-    });
-    promise.addFailureHandler(new FailureHandler() {
-      @Override
-      public void onError(RuntimeException exception) {
-        fail(exception);
-      }
-    });
+  void resolveChained(V value) {
+    resolveOptional(Optional.fromNullable(value));
   }
-
 }
@@ -0,0 +1,80 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A striped pool of the state behind {@link RecyclableDeferred}s. State is
+ * returned to the stripe of the thread that settles it and handed out from
+ * the stripe of the acquiring thread, falling back to the other stripes
+ * before allocating. In steady state a request/response cycle only allocates
+ * the small stamped handle, even when responses are delivered on a
+ * different thread.
+ */
+public final class DeferredPool {
+  private final List<ArrayDeque<DeferredSlot<?>>> stripes;
+  private final int maxPerStripe;
+  private final AtomicLong created = new AtomicLong();
+
+  /**
+   * Creates a pool with one stripe per available processor, each holding up
+   * to 64 recycled states.
+   */
+  public DeferredPool() {
+    this(Runtime.getRuntime().availableProcessors(), 64);
+  }
+
+  public DeferredPool(int numStripes, int maxPerStripe) {
+    Preconditions.checkArgument(numStripes > 0, "numStripes must be positive");
+    Preconditions.checkArgument(maxPerStripe >= 0, "maxPerStripe must be non-negative");
+    this.stripes = Lists.newArrayListWithCapacity(numStripes);
+    for (int i = 0; i < numStripes; ++i) {
+      stripes.add(new ArrayDeque<DeferredSlot<?>>(maxPerStripe));
+    }
+    this.maxPerStripe = maxPerStripe;
+  }
+
+  /**
+   * Returns a pending deferred, reusing recycled state if possible.
+   */
+  @SuppressWarnings("unchecked")
+  public <V> RecyclableDeferred<V> acquire() {
+    int home = stripeIndex();
+    for (int i = 0; i < stripes.size(); ++i) {
+      ArrayDeque<DeferredSlot<?>> stripe = stripes.get((home + i) % stripes.size());
+      DeferredSlot<?> slot;
+      synchronized (stripe) {
+        slot = stripe.pollFirst();
+      }
+      if (slot != null) {
+        return new RecyclableDeferred<>((DeferredSlot<V>)slot);
+      }
+    }
+    created.incrementAndGet();
+    return new RecyclableDeferred<>(new DeferredSlot<V>(this));
+  }
+
+  /**
+   * Returns the number of deferred states this pool has had to allocate.
+   */
+  public long getCreatedCount() {
+    return created.get();
+  }
+
+  void release(DeferredSlot<?> slot) {
+    ArrayDeque<DeferredSlot<?>> stripe = stripes.get(stripeIndex());
+    synchronized (stripe) {
+      if (stripe.size() < maxPerStripe) {
+        stripe.addFirst(slot);
+      }
+    }
+  }
+
+  private int stripeIndex() {
+    return (int)(Thread.currentThread().getId() % stripes.size());
+  }
+}
@@ -0,0 +1,214 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+
+/**
+ * The pooled state behind a {@link RecyclableDeferred}. Every method takes
+ * the generation of the calling handle and fails if the slot has been
+ * recycled since that handle was issued.
+ */
+final class DeferredSlot<V> {
+  private final DeferredPool pool;
+  private long generation;
+  private Promise.State state = Promise.State.PENDING;
+  private V value;
+  private RuntimeException exception;
+  private final ArrayList<SuccessHandler<V>> successHandlers = new ArrayList<>();
+  private final ArrayList<FailureHandler> failureHandlers = new ArrayList<>();
+  private final ArrayList<Runnable> completionHandlers = new ArrayList<>();
+
+  DeferredSlot(DeferredPool pool) {
+    this.pool = pool;
+  }
+
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  synchronized void resolve(long generation, V value) {
+    markResolved(generation, value);
+    dispatchSuccess();
+  }
+
+  synchronized void fail(long generation, RuntimeException exception) {
+    markFailed(generation, exception);
+    dispatchFailure();
+  }
+
+  /**
+   * Settles the slot without running any handlers. The returned Runnable runs
+   * them and then recycles the slot.
+   */
+  synchronized Runnable publishResolve(long generation, V value) {
+    markResolved(generation, value);
+    return new Runnable() {
+      @Override
+      public void run() {
+        dispatchSuccess();
+      }
+    };
+  }
+
+  synchronized Runnable publishFail(long generation, RuntimeException exception) {
+    markFailed(generation, exception);
+    return new Runnable() {
+      @Override
+      public void run() {
+        dispatchFailure();
+      }
+    };
+  }
+
+  /**
+   * As in DeferredImpl, context is captured before taking the monitor.
+   */
+  void addSuccessHandler(long generation, SuccessHandler<V> handler) {
+    addSuccessHandler(generation, ContextPropagators.capture(), handler);
+  }
+
+  private synchronized void addSuccessHandler(long generation,
+      ContextPropagators.Snapshot snapshot, SuccessHandler<V> handler) {
+    checkGeneration(generation);
+    switch (state) {
+      case PENDING:
+        successHandlers.add(ContextPropagators.wrapSuccess(snapshot, handler));
+        break;
+      case RESOLVED:
+        handler.onSuccess(value);
+        break;
+      case FAILED:
+        // Do nothing
+        break;
+    }
+  }
+
+  void addFailureHandler(long generation, FailureHandler failureHandler) {
+    addFailureHandler(generation, ContextPropagators.capture(), failureHandler);
+  }
+
+  private synchronized void addFailureHandler(long generation,
+      ContextPropagators.Snapshot snapshot, FailureHandler failureHandler) {
+    checkGeneration(generation);
+    switch (state) {
+      case PENDING:
+        failureHandlers.add(ContextPropagators.wrapFailure(snapshot, failureHandler));
+        break;
+      case RESOLVED:
+        // Do nothing
+        break;
+      case FAILED:
+        failureHandler.onError(exception);
+        break;
+    }
+  }
+
+  void addHandlers(long generation, SuccessHandler<V> successHandler,
+      FailureHandler failureHandler) {
+    addHandlers(generation, ContextPropagators.capture(), successHandler, failureHandler);
+  }
+
+  private synchronized void addHandlers(long generation, ContextPropagators.Snapshot snapshot,
+      SuccessHandler<V> successHandler, FailureHandler failureHandler) {
+    checkGeneration(generation);
+    switch (state) {
+      case PENDING:
+        successHandlers.add(ContextPropagators.wrapSuccess(snapshot, successHandler));
+        failureHandlers.add(ContextPropagators.wrapFailure(snapshot, failureHandler));
+        break;
+      case RESOLVED:
+        successHandler.onSuccess(value);
+        break;
+      case FAILED:
+        failureHandler.onError(exception);
+        break;
+    }
+  }
+
+  void addCompletionHandler(long generation, Runnable onComplete) {
+    addCompletionHandler(generation, ContextPropagators.capture(), onComplete);
+  }
+
+  private synchronized void addCompletionHandler(long generation,
+      ContextPropagators.Snapshot snapshot, Runnable onComplete) {
+    checkGeneration(generation);
+    if (state == Promise.State.PENDING) {
+      completionHandlers.add(ContextPropagators.wrapCompletion(snapshot, onComplete));
+    } else {
+      onComplete.run();
+    }
+  }
+
+  synchronized Promise.State getState(long generation) {
+    checkGeneration(generation);
+    return state;
+  }
+
+  private void markResolved(long generation, V value) {
+    checkGeneration(generation);
+    Preconditions.checkArgument(this.state == Promise.State.PENDING);
+
+    this.value = value;
+    this.state = Promise.State.RESOLVED;
+  }
+
+  private void markFailed(long generation, RuntimeException exception) {
+    checkGeneration(generation);
+    Preconditions.checkArgument(this.state == Promise.State.PENDING);
+
+    this.exception = exception;
+    this.state = Promise.State.FAILED;
+  }
+
+  /**
+   * Unlike DeferredImpl, these hold the monitor, since the slot is recycled
+   * as soon as the handlers have run.
+   */
+  private synchronized void dispatchSuccess() {
+    try {
+      // Indexed loops avoid allocating iterators on the dispatch path.
+      for (int i = 0; i < successHandlers.size(); ++i) {
+        successHandlers.get(i).onSuccess(value);
+      }
+      runCompletionHandlers();
+    } finally {
+      recycle();
+    }
+  }
+
+  private synchronized void dispatchFailure() {
+    try {
+      for (int i = 0; i < failureHandlers.size(); ++i) {
+        failureHandlers.get(i).onError(exception);
+      }
+      runCompletionHandlers();
+    } finally {
+      recycle();
+    }
+  }
+
+  private void runCompletionHandlers() {
+    for (int i = 0; i < completionHandlers.size(); ++i) {
+      completionHandlers.get(i).run();
+    }
+  }
+
+  private void recycle() {
+    successHandlers.clear();
+    failureHandlers.clear();
+    completionHandlers.clear();
+    value = null;
+    exception = null;
+    state = Promise.State.PENDING;
+    generation++;
+    pool.release(this);
+  }
+
+  private void checkGeneration(long generation) {
+    if (this.generation != generation) {
+      throw new IllegalStateException("RecyclableDeferred used after it was recycled: "
+          + "handle generation " + generation + ", slot generation " + this.generation);
+    }
+  }
+}
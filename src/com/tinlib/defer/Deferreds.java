@@ -1,6 +1,21 @@
 package com.tinlib.defer;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public class Deferreds {
+  /**
+   * Batches smaller than this are drained on the calling thread even when a
+   * ForkJoinPool is supplied.
+   */
+  private static final int PARALLEL_DRAIN_THRESHOLD = 256;
+
   private Deferreds() {}
 
   public static <V> Deferred<V> newDeferred() {
@@ -20,9 +35,190 @@ public class Deferreds {
   }
 
   public static void failAll(RuntimeException exception, Deferred<?>... deferreds) {
+    failAll(exception, Arrays.asList(deferreds));
+  }
+
+  /**
+   * Fails every deferred in the list with the same exception. All deferreds
+   * created by this library are moved to the FAILED state before any of
+   * their handlers are run; other Deferred implementations are only failed
+   * when their turn in the drain comes. If
+   * some deferreds cannot be failed, e.g. because they have already settled,
+   * the rest are still failed and drained before the first such error is
+   * thrown.
+   */
+  public static void failAll(RuntimeException exception, List<? extends Deferred<?>> deferreds) {
+    failAll(exception, deferreds, null);
+  }
+
+  /**
+   * Like {@link #failAll(RuntimeException, List)}, but spreads the handler
+   * drain across the supplied pool.
+   */
+  public static void failAll(RuntimeException exception, List<? extends Deferred<?>> deferreds,
+      ForkJoinPool pool) {
+    List<Runnable> drain = Lists.newArrayListWithCapacity(deferreds.size());
+    RuntimeException error = null;
     for (Deferred<?> deferred : deferreds) {
-      deferred.fail(exception);
+      try {
+        if (deferred instanceof AbstractDeferred) {
+          drain.add(((AbstractDeferred<?>)deferred).publishFail(exception));
+        } else {
+          drain.add(failLater(deferred, exception));
+        }
+      } catch (RuntimeException publishError) {
+        error = merge(error, publishError);
+      }
     }
+    throwIfPresent(merge(error, drain(drain, pool)));
+  }
+
+  /**
+   * Resolves each deferred in the map with its associated value. As in
+   * {@link #failAll(RuntimeException, List)}, the library's own deferreds are
+   * all moved to the RESOLVED state before any of their handlers are run.
+   * Errors are handled as in {@link #failAll(RuntimeException, List)}.
+   */
+  public static <V> void resolveAll(Map<? extends Deferred<V>, ? extends V> values) {
+    resolveAll(values, null);
   }
 
+  /**
+   * Like {@link #resolveAll(Map)}, but spreads the handler drain across the
+   * supplied pool.
+   */
+  public static <V> void resolveAll(Map<? extends Deferred<V>, ? extends V> values,
+      ForkJoinPool pool) {
+    List<Runnable> drain = Lists.newArrayListWithCapacity(values.size());
+    RuntimeException error = null;
+    for (Map.Entry<? extends Deferred<V>, ? extends V> entry : values.entrySet()) {
+      try {
+        drain.add(publishResolve(entry.getKey(), entry.getValue()));
+      } catch (RuntimeException publishError) {
+        error = merge(error, publishError);
+      }
+    }
+    throwIfPresent(merge(error, drain(drain, pool)));
+  }
+
+  /**
+   * Resolves deferreds.get(i) with values.get(i) for every index. The two
+   * lists must have the same size.
+   */
+  public static <V> void resolveAll(List<? extends Deferred<V>> deferreds,
+      List<? extends V> values) {
+    resolveAll(deferreds, values, null);
+  }
+
+  /**
+   * Like {@link #resolveAll(List, List)}, but spreads the handler drain across
+   * the supplied pool.
+   */
+  public static <V> void resolveAll(List<? extends Deferred<V>> deferreds,
+      List<? extends V> values, ForkJoinPool pool) {
+    Preconditions.checkArgument(deferreds.size() == values.size(),
+        "Got %s deferreds but %s values", deferreds.size(), values.size());
+    List<Runnable> drain = Lists.newArrayListWithCapacity(deferreds.size());
+    RuntimeException error = null;
+    for (int i = 0; i < deferreds.size(); ++i) {
+      try {
+        drain.add(publishResolve(deferreds.get(i), values.get(i)));
+      } catch (RuntimeException publishError) {
+        error = merge(error, publishError);
+      }
+    }
+    throwIfPresent(merge(error, drain(drain, pool)));
+  }
+
+  private static <V> Runnable publishResolve(final Deferred<V> deferred, final V value) {
+    if (deferred instanceof AbstractDeferred) {
+      return ((AbstractDeferred<V>)deferred).publishResolve(value);
+    }
+    return new Runnable() {
+      @Override
+      public void run() {
+        deferred.resolve(value);
+      }
+    };
+  }
+
+  private static Runnable failLater(final Deferred<?> deferred,
+      final RuntimeException exception) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        deferred.fail(exception);
+      }
+    };
+  }
+
+  /**
+   * Runs every Runnable in the drain, even if some of them throw. Returns the
+   * first exception, with any later ones attached as suppressed exceptions,
+   * or null if none were thrown.
+   */
+  private static RuntimeException drain(List<Runnable> drain, ForkJoinPool pool) {
+    if (pool == null || drain.size() < PARALLEL_DRAIN_THRESHOLD) {
+      return runAll(drain, 0, drain.size());
+    }
+    DrainAction action = new DrainAction(drain, 0, drain.size());
+    pool.invoke(action);
+    return action.error;
+  }
+
+  private static void throwIfPresent(RuntimeException error) {
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static RuntimeException runAll(List<Runnable> drain, int from, int to) {
+    RuntimeException error = null;
+    for (int i = from; i < to; ++i) {
+      try {
+        drain.get(i).run();
+      } catch (RuntimeException exception) {
+        error = merge(error, exception);
+      }
+    }
+    return error;
+  }
+
+  private static RuntimeException merge(RuntimeException first, RuntimeException second) {
+    if (first == null) {
+      return second;
+    }
+    if (second != null && second != first) {
+      first.addSuppressed(second);
+    }
+    return first;
+  }
+
+  private static final class DrainAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Runnable> drain;
+    private final int from;
+    private final int to;
+    private RuntimeException error;
+
+    DrainAction(List<Runnable> drain, int from, int to) {
+      this.drain = drain;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= PARALLEL_DRAIN_THRESHOLD) {
+        error = runAll(drain, from, to);
+      } else {
+        int middle = (from + to) >>> 1;
+        DrainAction left = new DrainAction(drain, from, middle);
+        DrainAction right = new DrainAction(drain, middle, to);
+        invokeAll(left, right);
+        error = merge(left.error, right.error);
+      }
+    }
+  }
 }
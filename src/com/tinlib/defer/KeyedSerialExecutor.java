@@ -0,0 +1,274 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs asynchronous tasks strictly one at a time per key, in submission
+ * order. A task is not started until the promise returned by the previous
+ * task for the same key has completed. Tasks for different keys run
+ * independently on the supplied executor.
+ *
+ * <p>Each key with outstanding work has a lock-free mailbox, which is removed
+ * as soon as its last task completes. Unlike chaining each task onto the
+ * previous one via then(), completed tasks are not retained and
+ * synchronously completing tasks do not grow the stack.
+ */
+public final class KeyedSerialExecutor<K> {
+  private final Executor executor;
+  private final ConcurrentMap<K, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+  public KeyedSerialExecutor(Executor executor) {
+    this.executor = Preconditions.checkNotNull(executor);
+  }
+
+  /**
+   * Queues the task behind all previously submitted tasks for the key. The
+   * returned promise settles like the promise returned by the task.
+   */
+  public <V> Promise<V> submit(K key, Callable<Promise<V>> task) {
+    Task<V> wrapped = new Task<>(task);
+    while (true) {
+      Mailbox mailbox = mailboxes.get(key);
+      if (mailbox == null) {
+        Mailbox created = new Mailbox(key);
+        mailbox = mailboxes.putIfAbsent(key, created);
+        if (mailbox == null) {
+          mailbox = created;
+        }
+      }
+      if (mailbox.offer(wrapped)) {
+        return wrapped.result;
+      }
+      // The mailbox retired concurrently; make sure it is gone and retry.
+      mailboxes.remove(key, mailbox);
+    }
+  }
+
+  /**
+   * Returns the number of keys which currently have queued or running tasks.
+   */
+  public int getActiveKeyCount() {
+    return mailboxes.size();
+  }
+
+  private static final class Task<V> {
+    private static final int PENDING = 0;
+    private static final int REGISTERED = 1;
+    private static final int COMPLETED_INLINE = 2;
+    private static final int COMPLETED = 3;
+
+    private final Callable<Promise<V>> callable;
+    private final DeferredImpl<V> result = new DeferredImpl<>();
+    private final AtomicInteger handshake = new AtomicInteger(PENDING);
+
+    Task(Callable<Promise<V>> callable) {
+      this.callable = callable;
+    }
+
+    /**
+     * Calls the task and settles its result from the returned promise.
+     * onComplete runs once that promise completes, even if one of the
+     * result's handlers throws. If handlers cannot be registered on the
+     * promise, e.g. because it is a recycled RecyclableDeferred, the result
+     * fails with that error and onComplete runs right away.
+     */
+    void run(final Runnable onComplete) {
+      Promise<V> promise = start();
+      PromiseTracer.link(promise, result, "chainFrom");
+      try {
+        register(promise, onComplete);
+      } catch (RuntimeException exception) {
+        try {
+          if (result.getState() != Promise.State.PENDING) {
+            // Thrown by one of the result's handlers, not by registration.
+            throw exception;
+          }
+          result.fail(exception);
+        } finally {
+          onComplete.run();
+        }
+      }
+    }
+
+    void reject(RuntimeException exception) {
+      result.fail(exception);
+    }
+
+    private void register(Promise<V> promise, final Runnable onComplete) {
+      AbstractDeferred.register(promise, new SuccessHandler<V>() {
+        @Override
+        public void onSuccess(V value) {
+          try {
+            result.resolveChained(value);
+          } finally {
+            onComplete.run();
+          }
+        }
+      }, new FailureHandler() {
+        @Override
+        public void onError(RuntimeException exception) {
+          try {
+            result.fail(exception);
+          } finally {
+            onComplete.run();
+          }
+        }
+      });
+    }
+
+    private Promise<V> start() {
+      Promise<V> promise;
+      try {
+        promise = callable.call();
+      } catch (RuntimeException exception) {
+        return Deferreds.newFailedDeferred(exception);
+      } catch (Exception exception) {
+        return Deferreds.newFailedDeferred(new RuntimeException(exception));
+      }
+      if (promise == null) {
+        return Deferreds.newFailedDeferred(
+            new NullPointerException("Task returned a null promise"));
+      }
+      return promise;
+    }
+  }
+
+  private final class Mailbox implements Runnable {
+    private final K key;
+    private final Queue<Task<?>> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * The number of submitted tasks that have not completed, or -1 once this
+     * mailbox has retired and must no longer accept tasks.
+     */
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    Mailbox(K key) {
+      this.key = key;
+    }
+
+    boolean offer(Task<?> task) {
+      int count;
+      do {
+        count = pending.get();
+        if (count < 0) {
+          return false;
+        }
+      } while (!pending.compareAndSet(count, count + 1));
+      tasks.add(task);
+      if (count == 0) {
+        schedule();
+      }
+      return true;
+    }
+
+    /**
+     * Runs tasks until one completes asynchronously or the mailbox is empty.
+     * Only one thread runs a given mailbox at a time. This never throws, so
+     * that schedule() can tell a rejection from an inline run. An exception
+     * thrown by a result handler of an inline-completing task is passed to
+     * the thread's uncaught exception handler once the loop is done.
+     */
+    @Override
+    public void run() {
+      RuntimeException error = null;
+      while (true) {
+        final Task<?> task = take();
+        try {
+          task.run(new Runnable() {
+            @Override
+            public void run() {
+              // Only the first call counts, however often a task completes.
+              if (!task.handshake.compareAndSet(Task.PENDING, Task.COMPLETED_INLINE) &&
+                  task.handshake.compareAndSet(Task.REGISTERED, Task.COMPLETED)) {
+                afterTask();
+              }
+            }
+          });
+        } catch (RuntimeException exception) {
+          if (error == null) {
+            error = exception;
+          }
+        }
+        if (task.handshake.compareAndSet(Task.PENDING, Task.REGISTERED)) {
+          // The task will call afterTask() itself once it completes.
+          break;
+        }
+        if (!finishTask()) {
+          break;
+        }
+      }
+      if (error != null) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, error);
+      }
+    }
+
+    private Task<?> take() {
+      while (true) {
+        Task<?> task = tasks.poll();
+        if (task != null) {
+          return task;
+        }
+        // A submitter has counted its task but not yet enqueued it.
+        Thread.yield();
+      }
+    }
+
+    private void afterTask() {
+      if (finishTask()) {
+        schedule();
+      }
+    }
+
+    /**
+     * Hands this mailbox to the executor. If the executor rejects it, the
+     * next task fails with the rejection and is counted as complete, and the
+     * task after it is scheduled instead.
+     */
+    private void schedule() {
+      RuntimeException error = null;
+      while (true) {
+        try {
+          executor.execute(this);
+          break;
+        } catch (RuntimeException rejection) {
+          try {
+            take().reject(rejection);
+          } catch (RuntimeException exception) {
+            if (error == null) {
+              error = exception;
+            }
+          }
+          if (!finishTask()) {
+            break;
+          }
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    /**
+     * Marks the current task as complete. Returns true if there is another
+     * task to run, otherwise retires this mailbox if it is still idle.
+     */
+    private boolean finishTask() {
+      if (pending.decrementAndGet() > 0) {
+        return true;
+      }
+      if (pending.compareAndSet(0, -1)) {
+        mailboxes.remove(key, this);
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Opt-in tracing of promise graphs. While enabled, a sampled fraction of root
+ * deferreds record a {@link TraceNode}, and every promise derived from a
+ * traced one via then(), chainFrom() or awaitAll() records an edge back to
+ * it. When tracing is disabled, the only cost is one volatile read per
+ * deferred created.
+ *
+ * <p>Sampling is decided once per trace: root deferreds created by a then()
+ * callback of a traced promise are always traced, so the promises it chains
+ * from keep their edges. Roots created elsewhere are sampled independently,
+ * so below a sample rate of 1.0 an awaitAll() over separately created roots
+ * may only record some of its inputs, and its critical path is then limited
+ * to those.
+ */
+public final class PromiseTracer {
+  private static volatile double sampleRate = 0.0;
+  private static final ThreadLocal<Boolean> inTrace = new ThreadLocal<Boolean>() {
+    @Override
+    protected Boolean initialValue() {
+      return false;
+    }
+  };
+
+  private PromiseTracer() {}
+
+  /**
+   * Traces every root deferred created from now on.
+   */
+  public static void enable() {
+    enable(1.0);
+  }
+
+  /**
+   * Traces the given fraction (between 0.0 and 1.0) of root deferreds created
+   * from now on. Promises derived from a traced promise are always traced.
+   */
+  public static void enable(double sampleRate) {
+    Preconditions.checkArgument(sampleRate >= 0.0 && sampleRate <= 1.0,
+        "Sample rate must be between 0 and 1, got %s", sampleRate);
+    PromiseTracer.sampleRate = sampleRate;
+  }
+
+  public static void disable() {
+    sampleRate = 0.0;
+  }
+
+  public static boolean isEnabled() {
+    return sampleRate > 0.0;
+  }
+
+  /**
+   * Returns the trace node of the given promise, or null if it is not traced.
+   */
+  public static TraceNode getTraceNode(Promise<?> promise) {
+    if (promise instanceof DeferredImpl) {
+      return ((DeferredImpl<?>)promise).getTraceNode();
+    }
+    return null;
+  }
+
+  /**
+   * Gives a traced promise a human-readable name for exported traces. Does
+   * nothing if the promise is not traced.
+   */
+  public static void setLabel(Promise<?> promise, String label) {
+    TraceNode node = getTraceNode(promise);
+    if (node != null) {
+      node.setLabel(label);
+    }
+  }
+
+  /**
+   * Returns the chain of promises, from a root to the given promise, which
+   * determined when the given promise settled. At each step the parent that
+   * settled last is followed.
+   */
+  public static List<TraceNode> criticalPath(Promise<?> promise) {
+    TraceNode node = getTraceNode(promise);
+    Preconditions.checkArgument(node != null, "Promise was not traced");
+    Preconditions.checkState(node.getState() != Promise.State.PENDING,
+        "Promise has not completed");
+    List<TraceNode> result = Lists.newArrayList();
+    Set<TraceNode> visited = Sets.newIdentityHashSet();
+    while (node != null && visited.add(node)) {
+      result.add(node);
+      TraceNode latest = null;
+      for (TraceNode parent : node.getParents()) {
+        if (parent.getState() != Promise.State.PENDING &&
+            (latest == null || parent.getSettledNanos() > latest.getSettledNanos())) {
+          latest = parent;
+        }
+      }
+      node = latest;
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  /**
+   * Writes every traced ancestor of the given completed promise to a file in
+   * the Chrome trace event format, loadable via chrome://tracing. Promises on
+   * the critical path are placed on thread 1, all others on thread 2.
+   */
+  public static void writeChromeTrace(Promise<?> promise, File file) throws IOException {
+    List<TraceNode> criticalPath = criticalPath(promise);
+    Set<TraceNode> critical = Sets.newIdentityHashSet();
+    critical.addAll(criticalPath);
+    List<TraceNode> nodes = ancestors(criticalPath.get(criticalPath.size() - 1));
+    long origin = Long.MAX_VALUE;
+    for (TraceNode node : nodes) {
+      origin = Math.min(origin, node.getCreatedNanos());
+    }
+
+    StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+    for (int i = 0; i < nodes.size(); ++i) {
+      TraceNode node = nodes.get(i);
+      long end = node.getState() == Promise.State.PENDING ? node.getCreatedNanos()
+          : node.getSettledNanos();
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("\n{\"name\":").append(quote(node.getLabel()))
+          .append(",\"cat\":").append(quote(critical.contains(node) ? "critical" : "promise"))
+          .append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(critical.contains(node) ? 1 : 2)
+          .append(",\"ts\":").append((node.getCreatedNanos() - origin) / 1000)
+          .append(",\"dur\":").append((end - node.getCreatedNanos()) / 1000)
+          .append(",\"args\":{\"id\":").append(node.getId())
+          .append(",\"kind\":").append(quote(node.getKind()))
+          .append(",\"state\":").append(quote(node.getState().toString()))
+          .append(",\"parents\":[");
+      List<TraceNode> parents = node.getParents();
+      for (int j = 0; j < parents.size(); ++j) {
+        if (j > 0) {
+          json.append(',');
+        }
+        json.append(parents.get(j).getId());
+      }
+      json.append("]}}");
+    }
+    json.append("\n]}\n");
+    Files.write(json, file, Charsets.UTF_8);
+  }
+
+  /**
+   * Returns a new trace node for a root deferred if it is selected by
+   * sampling, otherwise null.
+   */
+  static TraceNode newRootNode() {
+    double rate = sampleRate;
+    if (rate <= 0.0 ||
+        (rate < 1.0 && !inTrace.get() && ThreadLocalRandom.current().nextDouble() >= rate)) {
+      return null;
+    }
+    return new TraceNode("root");
+  }
+
+  /**
+   * Called before running a callback whose result the derived promise chains
+   * from. If the derived promise is traced, root deferreds created on this
+   * thread are traced until the matching exitTrace() call. Returns the value
+   * to pass to exitTrace().
+   */
+  static boolean enterTrace(Promise<?> derived) {
+    if (getTraceNode(derived) == null || inTrace.get()) {
+      return false;
+    }
+    inTrace.set(true);
+    return true;
+  }
+
+  static void exitTrace(boolean entered) {
+    if (entered) {
+      inTrace.set(false);
+    }
+  }
+
+  /**
+   * Records that the child promise was derived from the parent promise. Does
+   * nothing unless the parent is traced.
+   */
+  static void link(Promise<?> parent, DeferredImpl<?> child, String kind) {
+    TraceNode parentNode = getTraceNode(parent);
+    if (parentNode != null) {
+      child.getOrCreateTraceNode(kind).addParent(parentNode);
+    }
+  }
+
+  private static List<TraceNode> ancestors(TraceNode root) {
+    List<TraceNode> result = Lists.newArrayList();
+    Set<TraceNode> visited = Sets.newIdentityHashSet();
+    Deque<TraceNode> queue = new ArrayDeque<>();
+    queue.add(root);
+    visited.add(root);
+    while (!queue.isEmpty()) {
+      TraceNode node = queue.remove();
+      result.add(node);
+      for (TraceNode parent : node.getParents()) {
+        if (visited.add(parent)) {
+          queue.add(parent);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static String quote(String string) {
+    StringBuilder result = new StringBuilder("\"");
+    for (int i = 0; i < string.length(); ++i) {
+      char c = string.charAt(i);
+      if (c == '"' || c == '\\') {
+        result.append('\\').append(c);
+      } else if (c < 0x20) {
+        result.append(String.format("\\u%04x", (int)c));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.append('"').toString();
+  }
+}
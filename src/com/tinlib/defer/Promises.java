@@ -14,10 +14,11 @@ public class Promises {
 
   @SafeVarargs
   public static Promise<Void> awaitVoid(Promise<Void>... promises) {
-    final Deferred<Void> result = Deferreds.newDeferred();
+    final DeferredImpl<Void> result = new DeferredImpl<>(null, "awaitVoid");
     final AtomicInteger numOutstanding = new AtomicInteger(promises.length);
     final List<RuntimeException> exceptions = Lists.newArrayList();
     for (Promise<Void> promise : promises) {
+      PromiseTracer.link(promise, result, "awaitVoid");
       promise.addFailureHandler(new FailureHandler() {
         @Override
         public void onError(RuntimeException exception) {
@@ -54,12 +55,13 @@ public class Promises {
 
   @SuppressWarnings("unchecked")
   public static Promise<List<Object>> awaitAll(Promise<?>... promises) {
-    final Deferred<List<Object>> awaitAll = Deferreds.newDeferred();
+    final DeferredImpl<List<Object>> awaitAll = new DeferredImpl<>(null, "awaitAll");
     final List<Object> values = Lists.newArrayList(Collections.nCopies(promises.length, null));
     final AtomicInteger numOutstanding = new AtomicInteger(promises.length);
     final AtomicBoolean error = new AtomicBoolean(false);
     for (int i = 0; i < promises.length; ++i) {
       Promise<Object> promise = (Promise<Object>)promises[i];
+      PromiseTracer.link(promise, awaitAll, "awaitAll");
       final int index = i;
       promise.addSuccessHandler(new SuccessHandler<Object>() {
         @Override
@@ -0,0 +1,80 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A Deferred whose state is returned to its {@link DeferredPool} as soon as
+ * it has settled and every handler registered before that point has run. All
+ * handlers must therefore be registered before the deferred settles.
+ *
+ * <p>Each RecyclableDeferred is a small handle stamped with the generation
+ * of the pooled state it was issued for. Once that state has been recycled,
+ * every method on the handle throws an IllegalStateException, even after the
+ * state has been handed out again for another request. The handle is the
+ * only per-call allocation; the handler lists and settlement state are
+ * reused.
+ */
+public final class RecyclableDeferred<V> extends AbstractDeferred<V> {
+  private final DeferredSlot<V> slot;
+  private final long generation;
+
+  RecyclableDeferred(DeferredSlot<V> slot) {
+    this.slot = slot;
+    this.generation = slot.getGeneration();
+  }
+
+  @Override
+  public void resolve() {
+    slot.resolve(generation, null);
+  }
+
+  @Override
+  public void resolve(V value) {
+    slot.resolve(generation, Preconditions.checkNotNull(value));
+  }
+
+  @Override
+  public void fail(RuntimeException exception) {
+    slot.fail(generation, exception);
+  }
+
+  @Override
+  void resolveChained(V value) {
+    slot.resolve(generation, value);
+  }
+
+  @Override
+  Runnable publishResolve(V value) {
+    return slot.publishResolve(generation, value);
+  }
+
+  @Override
+  Runnable publishFail(RuntimeException exception) {
+    return slot.publishFail(generation, exception);
+  }
+
+  @Override
+  public void addSuccessHandler(SuccessHandler<V> handler) {
+    slot.addSuccessHandler(generation, handler);
+  }
+
+  @Override
+  public void addFailureHandler(FailureHandler failureHandler) {
+    slot.addFailureHandler(generation, failureHandler);
+  }
+
+  @Override
+  void addHandlers(SuccessHandler<V> successHandler, FailureHandler failureHandler) {
+    slot.addHandlers(generation, successHandler, failureHandler);
+  }
+
+  @Override
+  public void addCompletionHandler(Runnable onComplete) {
+    slot.addCompletionHandler(generation, onComplete);
+  }
+
+  @Override
+  public State getState() {
+    return slot.getState(generation);
+  }
+}
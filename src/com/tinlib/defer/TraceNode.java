@@ -0,0 +1,81 @@
+package com.tinlib.defer;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single traced promise in the graph recorded by {@link PromiseTracer}.
+ * Nodes only hold references to their parents, so a traced graph becomes
+ * garbage as soon as the promises at its leaves do.
+ */
+public final class TraceNode {
+  private static final AtomicLong nextId = new AtomicLong();
+
+  private final long id = nextId.incrementAndGet();
+  private final String kind;
+  private final long createdNanos = System.nanoTime();
+  private final List<TraceNode> parents = new CopyOnWriteArrayList<>();
+  private volatile String label;
+  private volatile long settledNanos;
+  private volatile Promise.State state = Promise.State.PENDING;
+
+  TraceNode(String kind) {
+    this.kind = kind;
+  }
+
+  void addParent(TraceNode parent) {
+    parents.add(parent);
+  }
+
+  void setLabel(String label) {
+    this.label = label;
+  }
+
+  void settle(Promise.State state) {
+    this.settledNanos = System.nanoTime();
+    this.state = state;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * Returns how this node was derived, e.g. "root", "then" or "awaitAll".
+   */
+  public String getKind() {
+    return kind;
+  }
+
+  public String getLabel() {
+    return label == null ? kind + "#" + id : label;
+  }
+
+  public long getCreatedNanos() {
+    return createdNanos;
+  }
+
+  /**
+   * Returns the System.nanoTime() at which this node settled. Only meaningful
+   * once getState() is no longer PENDING.
+   */
+  public long getSettledNanos() {
+    return settledNanos;
+  }
+
+  public Promise.State getState() {
+    return state;
+  }
+
+  public List<TraceNode> getParents() {
+    return ImmutableList.copyOf(parents);
+  }
+
+  @Override
+  public String toString() {
+    return getLabel() + "[" + state + "]";
+  }
+}
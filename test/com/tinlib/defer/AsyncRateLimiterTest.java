@@ -0,0 +1,89 @@
+package com.tinlib.defer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncRateLimiterTest {
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testBurst() {
+    AsyncRateLimiter limiter = new AsyncRateLimiter(1.0, 2, scheduler);
+    assertEquals(Promise.State.RESOLVED, limiter.acquire().getState());
+    assertEquals(Promise.State.RESOLVED, limiter.acquire().getState());
+    assertEquals(Promise.State.PENDING, limiter.acquire().getState());
+    assertEquals(1, limiter.getQueueLength());
+  }
+
+  @Test
+  public void testWaiterResolvedAfterRefill() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    AsyncRateLimiter limiter = new AsyncRateLimiter(100.0, 1, scheduler);
+    limiter.acquire();
+    limiter.acquire().addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    });
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(0, limiter.getQueueLength());
+  }
+
+  @Test
+  public void testQueueFull() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    AsyncRateLimiter limiter = new AsyncRateLimiter(1.0, 1, true, 0, scheduler);
+    limiter.acquire();
+    limiter.acquire().addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        assertTrue(exception instanceof RejectedExecutionException);
+        ran.set(true);
+      }
+    });
+    assertTrue(ran.get());
+  }
+
+  @Test
+  public void testSchedulerShutDown() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    scheduler.shutdown();
+    AsyncRateLimiter limiter = new AsyncRateLimiter(1.0, 1, scheduler);
+    limiter.acquire();
+    limiter.acquire().addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        assertTrue(exception instanceof RejectedExecutionException);
+        ran.set(true);
+      }
+    });
+    assertTrue(ran.get());
+    assertEquals(0, limiter.getQueueLength());
+    assertEquals(Promise.State.FAILED, limiter.acquire().getState());
+  }
+}
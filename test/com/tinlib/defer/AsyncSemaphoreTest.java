@@ -0,0 +1,177 @@
+package com.tinlib.defer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncSemaphoreTest {
+  @Test
+  public void testAcquireAndRelease() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    AsyncSemaphore semaphore = new AsyncSemaphore(1);
+    Promise<AsyncSemaphore.Permit> first = semaphore.acquire();
+    Promise<AsyncSemaphore.Permit> second = semaphore.acquire();
+    assertEquals(Promise.State.RESOLVED, first.getState());
+    assertEquals(Promise.State.PENDING, second.getState());
+    assertEquals(1, semaphore.getQueueLength());
+    first.addSuccessHandler(new SuccessHandler<AsyncSemaphore.Permit>() {
+      @Override
+      public void onSuccess(AsyncSemaphore.Permit permit) {
+        permit.release();
+        permit.release();
+      }
+    });
+    assertEquals(Promise.State.RESOLVED, second.getState());
+    assertEquals(0, semaphore.getAvailablePermits());
+    second.addSuccessHandler(new SuccessHandler<AsyncSemaphore.Permit>() {
+      @Override
+      public void onSuccess(AsyncSemaphore.Permit permit) {
+        permit.release();
+        ran.set(true);
+      }
+    });
+    assertTrue(ran.get());
+    assertEquals(1, semaphore.getAvailablePermits());
+  }
+
+  @Test
+  public void testWithPermit() {
+    AsyncSemaphore semaphore = new AsyncSemaphore(1);
+    final Deferred<String> task = Deferreds.newDeferred();
+    Promise<String> result = semaphore.withPermit(new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return task;
+      }
+    });
+    assertEquals(0, semaphore.getAvailablePermits());
+    task.resolve("done");
+    assertEquals(Promise.State.RESOLVED, result.getState());
+    assertEquals(1, semaphore.getAvailablePermits());
+  }
+
+  @Test
+  public void testWithPermitReleasesOnFailure() {
+    AsyncSemaphore semaphore = new AsyncSemaphore(1);
+    Promise<String> result = semaphore.withPermit(new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() throws Exception {
+        throw new Exception();
+      }
+    });
+    assertEquals(Promise.State.FAILED, result.getState());
+    assertEquals(1, semaphore.getAvailablePermits());
+  }
+
+  @Test
+  public void testWithPermitReleasesOnNullPromise() {
+    AsyncSemaphore semaphore = new AsyncSemaphore(1);
+    Promise<String> result = semaphore.withPermit(new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return null;
+      }
+    });
+    assertEquals(Promise.State.FAILED, result.getState());
+    assertEquals(1, semaphore.getAvailablePermits());
+  }
+
+  @Test
+  public void testQueueFull() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    AsyncSemaphore semaphore = new AsyncSemaphore(0, true, 1);
+    semaphore.acquire();
+    semaphore.acquire().addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        assertTrue(exception instanceof RejectedExecutionException);
+        ran.set(true);
+      }
+    });
+    assertTrue(ran.get());
+    assertEquals(1, semaphore.getQueueLength());
+  }
+
+  @Test
+  public void testLongQueueDoesNotRecurse() {
+    final AtomicInteger ran = new AtomicInteger(0);
+    AsyncSemaphore semaphore = new AsyncSemaphore(1);
+    final AtomicReference<AsyncSemaphore.Permit> gate = new AtomicReference<>();
+    semaphore.acquire().addSuccessHandler(new SuccessHandler<AsyncSemaphore.Permit>() {
+      @Override
+      public void onSuccess(AsyncSemaphore.Permit permit) {
+        gate.set(permit);
+      }
+    });
+    for (int i = 0; i < 50000; ++i) {
+      semaphore.withPermit(new Callable<Promise<Void>>() {
+        @Override
+        public Promise<Void> call() {
+          ran.incrementAndGet();
+          Deferred<Void> result = Deferreds.newDeferred();
+          result.resolve();
+          return result;
+        }
+      });
+    }
+    gate.get().release();
+    assertEquals(50000, ran.get());
+    assertEquals(1, semaphore.getAvailablePermits());
+    assertEquals(0, semaphore.getQueueLength());
+  }
+
+  @Test
+  public void testThrowingWaiterDoesNotStallDrain() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    final RuntimeException toThrow = new IllegalStateException();
+    AsyncSemaphore semaphore = new AsyncSemaphore(1);
+    final AtomicReference<AsyncSemaphore.Permit> gate = new AtomicReference<>();
+    semaphore.acquire().addSuccessHandler(new SuccessHandler<AsyncSemaphore.Permit>() {
+      @Override
+      public void onSuccess(AsyncSemaphore.Permit permit) {
+        gate.set(permit);
+      }
+    });
+    semaphore.acquire().addSuccessHandler(new SuccessHandler<AsyncSemaphore.Permit>() {
+      @Override
+      public void onSuccess(AsyncSemaphore.Permit permit) {
+        permit.release();
+        throw toThrow;
+      }
+    });
+    semaphore.acquire().addSuccessHandler(new SuccessHandler<AsyncSemaphore.Permit>() {
+      @Override
+      public void onSuccess(AsyncSemaphore.Permit permit) {
+        permit.release();
+        ran.set(true);
+      }
+    });
+    final AtomicReference<Throwable> reported = new AtomicReference<>();
+    Thread thread = Thread.currentThread();
+    Thread.UncaughtExceptionHandler previous = thread.getUncaughtExceptionHandler();
+    thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread thread, Throwable exception) {
+        reported.set(exception);
+      }
+    });
+    try {
+      gate.get().release();
+    } finally {
+      thread.setUncaughtExceptionHandler(previous);
+    }
+    assertEquals(toThrow, reported.get());
+    assertTrue(ran.get());
+    assertEquals(Promise.State.RESOLVED, semaphore.acquire().getState());
+  }
+}
@@ -0,0 +1,239 @@
+package com.tinlib.defer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ContextPropagatorsTest {
+  private static final ThreadLocal<String> context = new ThreadLocal<>();
+
+  private final AtomicInteger captures = new AtomicInteger(0);
+
+  private final ContextPropagator propagator = new ContextPropagator() {
+    @Override
+    public Object capture() {
+      captures.incrementAndGet();
+      return context.get();
+    }
+
+    @Override
+    public Object restore(Object value) {
+      String previous = context.get();
+      context.set((String)value);
+      return previous;
+    }
+  };
+
+  @After
+  public void tearDown() {
+    ContextPropagators.unregister(propagator);
+    context.remove();
+  }
+
+  @Test
+  public void testNoPropagators() {
+    final AtomicReference<String> seen = new AtomicReference<>();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    context.set("registration");
+    deferred.addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        seen.set(context.get());
+      }
+    });
+    context.set("resolution");
+    deferred.resolve("value");
+    assertEquals("resolution", seen.get());
+  }
+
+  @Test
+  public void testSuccessHandler() {
+    ContextPropagators.register(propagator);
+    final AtomicReference<String> seen = new AtomicReference<>();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    context.set("registration");
+    deferred.addSuccessHandler(new SuccessHandler<String>() {
+      @Override
+      public void onSuccess(String value) {
+        seen.set(context.get());
+      }
+    });
+    context.set("resolution");
+    deferred.resolve("value");
+    assertEquals("registration", seen.get());
+    assertEquals("resolution", context.get());
+  }
+
+  @Test
+  public void testFailureAndCompletionHandlers() {
+    ContextPropagators.register(propagator);
+    final AtomicReference<String> failureSeen = new AtomicReference<>();
+    final AtomicReference<String> completionSeen = new AtomicReference<>();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    context.set("registration");
+    deferred.addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        failureSeen.set(context.get());
+      }
+    });
+    deferred.addCompletionHandler(new Runnable() {
+      @Override
+      public void run() {
+        completionSeen.set(context.get());
+      }
+    });
+    context.set("resolution");
+    deferred.fail(new RuntimeException());
+    assertEquals("registration", failureSeen.get());
+    assertEquals("registration", completionSeen.get());
+    assertEquals("resolution", context.get());
+  }
+
+  @Test
+  public void testThen() {
+    ContextPropagators.register(propagator);
+    final AtomicReference<String> seen = new AtomicReference<>();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    context.set("registration");
+    deferred.then(new Runnable() {
+      @Override
+      public void run() {
+        seen.set(context.get());
+      }
+    });
+    context.set("resolution");
+    deferred.resolve("value");
+    assertEquals("registration", seen.get());
+  }
+
+  @Test
+  public void testUnregister() {
+    ContextPropagators.register(propagator);
+    ContextPropagators.unregister(propagator);
+    final AtomicReference<String> seen = new AtomicReference<>();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    context.set("registration");
+    deferred.addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        seen.set(context.get());
+      }
+    });
+    context.set("resolution");
+    deferred.resolve("value");
+    assertEquals("resolution", seen.get());
+  }
+
+  @Test
+  public void testCapturedOncePerRegistration() {
+    ContextPropagators.register(propagator);
+    final AtomicReference<String> seen = new AtomicReference<>();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    Deferred<String> chained = Deferreds.newDeferred();
+    context.set("registration");
+    deferred.then(new Runnable() {
+      @Override
+      public void run() {
+        seen.set(context.get());
+      }
+    });
+    assertEquals(1, captures.get());
+    chained.chainFrom(deferred);
+    assertEquals(2, captures.get());
+    context.set("resolution");
+    deferred.resolve("value");
+    assertEquals("registration", seen.get());
+    assertEquals("resolution", context.get());
+    assertEquals(2, captures.get());
+  }
+
+  @Test
+  public void testThrowingRestoreLeavesContextUnchanged() {
+    final RuntimeException toThrow = new IllegalStateException();
+    ContextPropagator throwing = new ContextPropagator() {
+      @Override
+      public Object capture() {
+        return null;
+      }
+
+      @Override
+      public Object restore(Object value) {
+        throw toThrow;
+      }
+    };
+    ContextPropagators.register(propagator);
+    ContextPropagators.register(throwing);
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    try {
+      Deferred<String> deferred = Deferreds.newDeferred();
+      context.set("registration");
+      deferred.addSuccessHandler(new Runnable() {
+        @Override
+        public void run() {
+          ran.set(true);
+        }
+      });
+      context.set("resolution");
+      try {
+        deferred.resolve("value");
+        fail("Expected restore exception to propagate");
+      } catch (IllegalStateException exception) {
+        assertEquals(toThrow, exception);
+      }
+    } finally {
+      ContextPropagators.unregister(throwing);
+    }
+    assertFalse(ran.get());
+    assertEquals("resolution", context.get());
+  }
+
+  @Test
+  public void testCaptureDoesNotHoldMonitor() {
+    final Deferred<String> deferred = Deferreds.newDeferred();
+    final AtomicBoolean heldLock = new AtomicBoolean(false);
+    ContextPropagator checking = new ContextPropagator() {
+      @Override
+      public Object capture() {
+        heldLock.compareAndSet(false, Thread.holdsLock(deferred));
+        return null;
+      }
+
+      @Override
+      public Object restore(Object value) {
+        return null;
+      }
+    };
+    ContextPropagators.register(checking);
+    try {
+      deferred.addSuccessHandler(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      deferred.then(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      deferred.addCompletionHandler(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+    } finally {
+      ContextPropagators.unregister(checking);
+    }
+    assertFalse(heldLock.get());
+  }
+}
@@ -4,10 +4,18 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(MockitoJUnitRunner.class)
 public class DeferredsTest {
@@ -60,4 +68,161 @@ public class DeferredsTest {
     assertTrue(oneRan.get());
     assertTrue(twoRan.get());
   }
+
+  @Test
+  public void testFailAllPublishesBeforeDispatch() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    Deferred<Void> one = Deferreds.newDeferred();
+    final Deferred<Void> two = Deferreds.newDeferred();
+    one.addFailureHandler(new Runnable() {
+      @Override
+      public void run() {
+        assertEquals(Promise.State.FAILED, two.getState());
+        ran.set(true);
+      }
+    });
+    Deferreds.failAll(new RuntimeException(), one, two);
+    assertTrue(ran.get());
+  }
+
+  @Test
+  public void testFailAllHandlersRethrowingSameException() {
+    final AtomicInteger ran = new AtomicInteger(0);
+    final RuntimeException exception = new RuntimeException();
+    List<Deferred<Void>> deferreds = Lists.newArrayList();
+    for (int i = 0; i < 3; ++i) {
+      Deferred<Void> deferred = Deferreds.newDeferred();
+      deferred.addFailureHandler(new FailureHandler() {
+        @Override
+        public void onError(RuntimeException error) {
+          ran.incrementAndGet();
+          throw error;
+        }
+      });
+      deferreds.add(deferred);
+    }
+    try {
+      Deferreds.failAll(exception, deferreds);
+      fail("Expected handler exception to propagate");
+    } catch (RuntimeException error) {
+      assertEquals(exception, error);
+      assertEquals(0, error.getSuppressed().length);
+    }
+    assertEquals(3, ran.get());
+  }
+
+  @Test
+  public void testResolveAllPublishesRecyclableDeferreds() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    DeferredPool pool = new DeferredPool();
+    RecyclableDeferred<String> one = pool.acquire();
+    final RecyclableDeferred<String> two = pool.acquire();
+    one.addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        assertEquals(Promise.State.RESOLVED, two.getState());
+        ran.set(true);
+      }
+    });
+    Deferreds.resolveAll(ImmutableList.of(one, two), ImmutableList.of("one", "two"));
+    assertTrue(ran.get());
+  }
+
+  @Test
+  public void testResolveAllMap() {
+    final AtomicBoolean oneRan = new AtomicBoolean(false);
+    final AtomicBoolean twoRan = new AtomicBoolean(false);
+    Deferred<String> one = Deferreds.newDeferred();
+    final Deferred<String> two = Deferreds.newDeferred();
+    one.addSuccessHandler(new SuccessHandler<String>() {
+      @Override
+      public void onSuccess(String value) {
+        assertEquals("one", value);
+        assertEquals(Promise.State.RESOLVED, two.getState());
+        oneRan.set(true);
+      }
+    });
+    two.addSuccessHandler(new SuccessHandler<String>() {
+      @Override
+      public void onSuccess(String value) {
+        assertEquals("two", value);
+        twoRan.set(true);
+      }
+    });
+    Deferreds.resolveAll(ImmutableMap.of(one, "one", two, "two"));
+    assertTrue(oneRan.get());
+    assertTrue(twoRan.get());
+  }
+
+  @Test
+  public void testResolveAllListsInPool() {
+    final AtomicInteger sum = new AtomicInteger(0);
+    List<Deferred<Integer>> deferreds = Lists.newArrayList();
+    List<Integer> values = Lists.newArrayList();
+    for (int i = 0; i < 1000; ++i) {
+      Deferred<Integer> deferred = Deferreds.newDeferred();
+      deferred.addSuccessHandler(new SuccessHandler<Integer>() {
+        @Override
+        public void onSuccess(Integer value) {
+          sum.addAndGet(value);
+        }
+      });
+      deferreds.add(deferred);
+      values.add(i);
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Deferreds.resolveAll(deferreds, values, pool);
+    pool.shutdown();
+    assertEquals(999 * 1000 / 2, sum.get());
+  }
+
+  @Test
+  public void testResolveAllRunsEveryHandler() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    final RuntimeException toThrow = new RuntimeException();
+    Deferred<String> one = Deferreds.newDeferred();
+    Deferred<String> two = Deferreds.newDeferred();
+    one.addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        throw toThrow;
+      }
+    });
+    two.addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        ran.set(true);
+      }
+    });
+    try {
+      Deferreds.resolveAll(ImmutableList.of(one, two), ImmutableList.of("one", "two"));
+      fail("Expected handler exception to propagate");
+    } catch (RuntimeException exception) {
+      assertEquals(toThrow, exception);
+    }
+    assertTrue(ran.get());
+  }
+
+  @Test
+  public void testResolveAllSettledDeferred() {
+    final RuntimeException handlerError = new IllegalStateException();
+    Deferred<String> one = Deferreds.newDeferred();
+    Deferred<String> two = Deferreds.newResolvedDeferred("done");
+    Deferred<String> three = Deferreds.newDeferred();
+    one.addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        throw handlerError;
+      }
+    });
+    try {
+      Deferreds.resolveAll(ImmutableList.of(one, two, three),
+          ImmutableList.of("one", "two", "three"));
+      fail("Expected publish error to propagate");
+    } catch (IllegalArgumentException exception) {
+      assertEquals(1, exception.getSuppressed().length);
+      assertEquals(handlerError, exception.getSuppressed()[0]);
+    }
+    assertEquals(Promise.State.RESOLVED, three.getState());
+  }
 }
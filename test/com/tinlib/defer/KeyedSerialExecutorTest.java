@@ -0,0 +1,280 @@
+package com.tinlib.defer;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KeyedSerialExecutorTest {
+  @Test
+  public void testRunsOneAtATimePerKey() {
+    final AtomicBoolean secondStarted = new AtomicBoolean(false);
+    KeyedSerialExecutor<String> executor =
+        new KeyedSerialExecutor<>(MoreExecutors.sameThreadExecutor());
+    final Deferred<String> first = Deferreds.newDeferred();
+    executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return first;
+      }
+    });
+    Promise<String> second = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        secondStarted.set(true);
+        return Deferreds.newResolvedDeferred("second");
+      }
+    });
+    assertFalse(secondStarted.get());
+    assertEquals(1, executor.getActiveKeyCount());
+    first.resolve("first");
+    assertTrue(secondStarted.get());
+    assertEquals(Promise.State.RESOLVED, second.getState());
+    assertEquals(0, executor.getActiveKeyCount());
+  }
+
+  @Test
+  public void testKeysAreIndependent() {
+    KeyedSerialExecutor<String> executor =
+        new KeyedSerialExecutor<>(MoreExecutors.sameThreadExecutor());
+    executor.submit("one", new Callable<Promise<Void>>() {
+      @Override
+      public Promise<Void> call() {
+        return Deferreds.newDeferred();
+      }
+    });
+    Promise<String> two = executor.submit("two", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return Deferreds.newResolvedDeferred("two");
+      }
+    });
+    assertEquals(Promise.State.RESOLVED, two.getState());
+    assertEquals(1, executor.getActiveKeyCount());
+  }
+
+  @Test
+  public void testFailureDoesNotStallKey() {
+    KeyedSerialExecutor<String> executor =
+        new KeyedSerialExecutor<>(MoreExecutors.sameThreadExecutor());
+    Promise<String> failed = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() throws Exception {
+        throw new Exception();
+      }
+    });
+    Promise<String> next = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return Deferreds.newResolvedDeferred("next");
+      }
+    });
+    assertEquals(Promise.State.FAILED, failed.getState());
+    assertEquals(Promise.State.RESOLVED, next.getState());
+  }
+
+  @Test
+  public void testSynchronousTasksDoNotRecurse() {
+    final List<Runnable> scheduled = Lists.newArrayList();
+    KeyedSerialExecutor<String> executor = new KeyedSerialExecutor<>(new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        scheduled.add(runnable);
+      }
+    });
+    final AtomicInteger ran = new AtomicInteger(0);
+    for (int i = 0; i < 100000; ++i) {
+      executor.submit("key", new Callable<Promise<Void>>() {
+        @Override
+        public Promise<Void> call() {
+          ran.incrementAndGet();
+          Deferred<Void> result = Deferreds.newDeferred();
+          result.resolve();
+          return result;
+        }
+      });
+    }
+    assertEquals(1, scheduled.size());
+    scheduled.get(0).run();
+    assertEquals(100000, ran.get());
+    assertEquals(0, executor.getActiveKeyCount());
+  }
+
+  @Test
+  public void testOrderingAcrossThreads() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    KeyedSerialExecutor<Integer> executor = new KeyedSerialExecutor<>(pool);
+    final int numKeys = 8;
+    final int perKey = 1000;
+    final int[] lastSeen = new int[numKeys];
+    final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+    final CountDownLatch done = new CountDownLatch(numKeys * perKey);
+    for (int i = 0; i < perKey; ++i) {
+      for (int key = 0; key < numKeys; ++key) {
+        final int k = key;
+        final int sequence = i + 1;
+        executor.submit(key, new Callable<Promise<Void>>() {
+          @Override
+          public Promise<Void> call() {
+            if (lastSeen[k] != sequence - 1) {
+              outOfOrder.set(true);
+            }
+            lastSeen[k] = sequence;
+            done.countDown();
+            Deferred<Void> result = Deferreds.newDeferred();
+            result.resolve();
+            return result;
+          }
+        });
+      }
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    pool.shutdown();
+    assertFalse(outOfOrder.get());
+  }
+
+  @Test
+  public void testThrowingResultHandlerDoesNotStallKey() {
+    KeyedSerialExecutor<String> executor =
+        new KeyedSerialExecutor<>(MoreExecutors.sameThreadExecutor());
+    final Deferred<String> first = Deferreds.newDeferred();
+    Promise<String> result = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return first;
+      }
+    });
+    result.addSuccessHandler(new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException();
+      }
+    });
+    try {
+      first.resolve("first");
+      fail("Expected handler exception to propagate");
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(0, executor.getActiveKeyCount());
+    Promise<String> next = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return Deferreds.newResolvedDeferred("next");
+      }
+    });
+    assertEquals(Promise.State.RESOLVED, next.getState());
+    assertEquals(0, executor.getActiveKeyCount());
+  }
+
+  @Test
+  public void testRejectedExecutionDoesNotStallKey() {
+    final AtomicBoolean reject = new AtomicBoolean(true);
+    KeyedSerialExecutor<String> executor = new KeyedSerialExecutor<>(new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        if (reject.getAndSet(false)) {
+          throw new RejectedExecutionException();
+        }
+        runnable.run();
+      }
+    });
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    Promise<String> rejected = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        ran.set(true);
+        return Deferreds.newResolvedDeferred("rejected");
+      }
+    });
+    rejected.addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        assertTrue(exception instanceof RejectedExecutionException);
+      }
+    });
+    assertEquals(Promise.State.FAILED, rejected.getState());
+    assertFalse(ran.get());
+    assertEquals(0, executor.getActiveKeyCount());
+    Promise<String> next = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return Deferreds.newResolvedDeferred("next");
+      }
+    });
+    assertEquals(Promise.State.RESOLVED, next.getState());
+  }
+
+  @Test
+  public void testNullPromiseDoesNotStallKey() {
+    KeyedSerialExecutor<String> executor =
+        new KeyedSerialExecutor<>(MoreExecutors.sameThreadExecutor());
+    Promise<String> failed = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return null;
+      }
+    });
+    failed.addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        assertTrue(exception instanceof NullPointerException);
+      }
+    });
+    assertEquals(Promise.State.FAILED, failed.getState());
+    Promise<String> next = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return Deferreds.newResolvedDeferred("next");
+      }
+    });
+    assertEquals(Promise.State.RESOLVED, next.getState());
+    assertEquals(0, executor.getActiveKeyCount());
+  }
+
+  @Test
+  public void testUnregistrablePromiseDoesNotStallKey() {
+    KeyedSerialExecutor<String> executor =
+        new KeyedSerialExecutor<>(MoreExecutors.sameThreadExecutor());
+    final RecyclableDeferred<String> recycled = new DeferredPool().acquire();
+    recycled.resolve("recycled");
+    Promise<String> failed = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return recycled;
+      }
+    });
+    failed.addFailureHandler(new FailureHandler() {
+      @Override
+      public void onError(RuntimeException exception) {
+        assertTrue(exception instanceof IllegalStateException);
+      }
+    });
+    assertEquals(Promise.State.FAILED, failed.getState());
+    Promise<String> next = executor.submit("key", new Callable<Promise<String>>() {
+      @Override
+      public Promise<String> call() {
+        return Deferreds.newResolvedDeferred("next");
+      }
+    });
+    assertEquals(Promise.State.RESOLVED, next.getState());
+    assertEquals(0, executor.getActiveKeyCount());
+  }
+}
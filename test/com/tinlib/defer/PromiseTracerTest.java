@@ -0,0 +1,139 @@
+package com.tinlib.defer;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PromiseTracerTest {
+  @After
+  public void tearDown() {
+    PromiseTracer.disable();
+  }
+
+  @Test
+  public void testDisabled() {
+    Deferred<String> deferred = Deferreds.newDeferred();
+    Promise<Void> result = deferred.then(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    assertNull(PromiseTracer.getTraceNode(deferred));
+    assertNull(PromiseTracer.getTraceNode(result));
+  }
+
+  @Test
+  public void testSampledOut() {
+    PromiseTracer.enable(0.0);
+    Deferred<String> deferred = Deferreds.newDeferred();
+    assertNull(PromiseTracer.getTraceNode(deferred));
+  }
+
+  @Test
+  public void testThenEdges() {
+    PromiseTracer.enable();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    final Deferred<String> inner = Deferreds.newDeferred();
+    Promise<String> result = deferred.then(new Function<String, Promise<String>>() {
+      @Override
+      public Promise<String> apply(String value) {
+        return inner;
+      }
+    });
+    TraceNode node = PromiseTracer.getTraceNode(result);
+    assertNotNull(node);
+    assertEquals("then", node.getKind());
+    assertEquals(1, node.getParents().size());
+    deferred.resolve("one");
+    assertEquals(2, node.getParents().size());
+  }
+
+  @Test
+  public void testCriticalPath() throws Exception {
+    PromiseTracer.enable();
+    Deferred<String> fast = Deferreds.newDeferred();
+    Deferred<String> slow = Deferreds.newDeferred();
+    PromiseTracer.setLabel(fast, "fast");
+    PromiseTracer.setLabel(slow, "slow");
+    Promise<List<Object>> all = Promises.awaitAll(fast, slow);
+    fast.resolve("fast");
+    Thread.sleep(1);
+    slow.resolve("slow");
+    List<TraceNode> path = PromiseTracer.criticalPath(all);
+    assertEquals(2, path.size());
+    assertEquals("slow", path.get(0).getLabel());
+    assertEquals("awaitAll", path.get(1).getKind());
+  }
+
+  @Test
+  public void testCallbackRootsJoinTrace() throws Exception {
+    PromiseTracer.enable();
+    Deferred<String> deferred = Deferreds.newDeferred();
+    // Never samples a new trace, but the first callback below runs inside one.
+    PromiseTracer.enable(Double.MIN_VALUE);
+    Deferred<String> other = Deferreds.newDeferred();
+    final List<Deferred<String>> created = Lists.newArrayList();
+    Promise<String> result = deferred.then(new Function<String, Promise<String>>() {
+      @Override
+      public Promise<String> apply(String value) {
+        Deferred<String> fetch = Deferreds.newDeferred();
+        created.add(fetch);
+        return fetch;
+      }
+    });
+    other.then(new Function<String, Promise<String>>() {
+      @Override
+      public Promise<String> apply(String value) {
+        Deferred<String> fetch = Deferreds.newDeferred();
+        created.add(fetch);
+        return fetch;
+      }
+    });
+    deferred.resolve("one");
+    other.resolve("two");
+    assertNotNull(PromiseTracer.getTraceNode(created.get(0)));
+    assertNull(PromiseTracer.getTraceNode(created.get(1)));
+    PromiseTracer.setLabel(created.get(0), "fetch");
+    Thread.sleep(1);
+    created.get(0).resolve("three");
+    List<TraceNode> path = PromiseTracer.criticalPath(result);
+    assertEquals(2, path.size());
+    assertEquals("fetch", path.get(0).getLabel());
+    assertEquals("then", path.get(1).getKind());
+  }
+
+  @Test
+  public void testWriteChromeTrace() throws Exception {
+    PromiseTracer.enable();
+    Deferred<String> one = Deferreds.newDeferred();
+    Deferred<String> two = Deferreds.newDeferred();
+    PromiseTracer.setLabel(one, "one \"quoted\"");
+    Promise<Pair<String, String>> pair = Promises.awaitPair(one, two);
+    one.resolve("one");
+    two.resolve("two");
+    File file = File.createTempFile("trace", ".json");
+    try {
+      PromiseTracer.writeChromeTrace(pair, file);
+      String json = Files.toString(file, Charsets.UTF_8);
+      assertTrue(json.startsWith("{\"traceEvents\":["));
+      assertTrue(json.contains("\"name\":\"one \\\"quoted\\\"\""));
+      assertTrue(json.contains("\"cat\":\"critical\""));
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.tinlib.defer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RecyclableDeferredTest {
+  @Test
+  public void testResolveRunsHandlersThenRecycles() {
+    final AtomicBoolean successRan = new AtomicBoolean(false);
+    final AtomicBoolean completeRan = new AtomicBoolean(false);
+    DeferredPool pool = new DeferredPool(1, 4);
+    RecyclableDeferred<String> deferred = pool.acquire();
+    deferred.addSuccessHandler(new SuccessHandler<String>() {
+      @Override
+      public void onSuccess(String value) {
+        assertEquals("value", value);
+        successRan.set(true);
+      }
+    });
+    deferred.addCompletionHandler(new Runnable() {
+      @Override
+      public void run() {
+        completeRan.set(true);
+      }
+    });
+    deferred.resolve("value");
+    assertTrue(successRan.get());
+    assertTrue(completeRan.get());
+    pool.acquire();
+    assertEquals(1, pool.getCreatedCount());
+  }
+
+  @Test
+  public void testFailRecycles() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    DeferredPool pool = new DeferredPool(1, 4);
+    RecyclableDeferred<String> deferred = pool.acquire();
+    deferred.addFailureHandler(new Runnable() {
+      @Override
+      public void run() {
+        ran.set(true);
+      }
+    });
+    deferred.fail(new RuntimeException());
+    assertTrue(ran.get());
+    pool.acquire();
+    assertEquals(1, pool.getCreatedCount());
+  }
+
+  @Test
+  public void testUseAfterRecycleFails() {
+    DeferredPool pool = new DeferredPool(1, 4);
+    RecyclableDeferred<String> deferred = pool.acquire();
+    deferred.resolve("value");
+    try {
+      deferred.getState();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testStaleResolveAfterReuseFails() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    DeferredPool pool = new DeferredPool(1, 4);
+    RecyclableDeferred<String> first = pool.acquire();
+    first.resolve("first");
+    RecyclableDeferred<String> second = pool.acquire();
+    assertEquals(1, pool.getCreatedCount());
+    second.addSuccessHandler(new SuccessHandler<String>() {
+      @Override
+      public void onSuccess(String value) {
+        assertEquals("second", value);
+        ran.set(true);
+      }
+    });
+    try {
+      first.resolve("stale");
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      first.addSuccessHandler(new Runnable() {
+        @Override
+        public void run() {
+          fail("Stale handler should not be registered");
+        }
+      });
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(Promise.State.PENDING, second.getState());
+    second.resolve("second");
+    assertTrue(ran.get());
+  }
+
+  @Test
+  public void testThen() {
+    final AtomicBoolean ran = new AtomicBoolean(false);
+    DeferredPool pool = new DeferredPool(1, 4);
+    RecyclableDeferred<String> deferred = pool.acquire();
+    Promise<Void> result = deferred.then(new Runnable() {
+      @Override
+      public void run() {
+        ran.set(true);
+      }
+    });
+    deferred.resolve("value");
+    assertTrue(ran.get());
+    assertEquals(Promise.State.RESOLVED, result.getState());
+  }
+
+  @Test
+  public void testPoolBound() {
+    DeferredPool pool = new DeferredPool(1, 1);
+    RecyclableDeferred<String> one = pool.acquire();
+    RecyclableDeferred<String> two = pool.acquire();
+    one.resolve();
+    two.resolve();
+    pool.acquire();
+    pool.acquire();
+    assertEquals(3, pool.getCreatedCount());
+  }
+}